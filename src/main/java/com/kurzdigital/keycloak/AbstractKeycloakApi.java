@@ -1,13 +1,17 @@
 package com.kurzdigital.keycloak;
 
+import com.kurzdigital.keycloak.ResponseHelper.SimpleReturnFunction;
 import org.keycloak.admin.client.Keycloak;
 import org.keycloak.admin.client.resource.RealmResource;
 import org.keycloak.admin.client.resource.UserResource;
 import org.keycloak.admin.client.resource.UsersResource;
 import org.keycloak.representations.adapters.config.AdapterConfig;
+import org.keycloak.representations.idm.RealmRepresentation;
 import org.keycloak.representations.idm.UserRepresentation;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class AbstractKeycloakApi implements AutoCloseable {
 
@@ -16,6 +20,9 @@ public abstract class AbstractKeycloakApi implements AutoCloseable {
     protected final AdapterConfig keycloakConfiguration;
     protected final String userName;
 
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+    private final AtomicLong writeEpoch = new AtomicLong();
+
     /**
      * Creates a new {@link AbstractKeycloakApi} instance. The given user must have realm-management rights on client realm-admin!
      */
@@ -32,6 +39,30 @@ public abstract class AbstractKeycloakApi implements AutoCloseable {
         return keycloak.realm(realm);
     }
 
+    /**
+     * Retrieves the representation of the configured realm. Concurrent calls share a single request and receive
+     * the same instance, so it must not be modified.
+     */
+    protected RealmRepresentation getRealmRepresentation() {
+        return coalesce("realm", realm, () -> getRealmResource().toRepresentation());
+    }
+
+    /**
+     * Executes the given read. Concurrent callers with the same operation and argument share one in-flight call
+     * and all receive its result or exception. A read never shares a call started before the last
+     * {@link #invalidateReads()}, so it always sees the writes completed on this instance before it started.
+     */
+    protected <R> R coalesce(String operation, Object argument, SimpleReturnFunction<R> function) {
+        return coalescer.coalesce(Arrays.asList(operation, argument, writeEpoch.get()), function);
+    }
+
+    /**
+     * Must be called after each write, so subsequent reads do not join calls started before the write.
+     */
+    protected void invalidateReads() {
+        writeEpoch.incrementAndGet();
+    }
+
     @Override
     public void close() throws Exception {
         RealmResource realm = getRealmResource();
@@ -1,9 +1,16 @@
 package com.kurzdigital.keycloak;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface GroupApi {
     void createGroup(String group);
 
+    void createGroups(List<String> groupPaths);
+
     List<KeycloakUser> getGroupMembers(String groupName);
+
+    List<KeycloakUser> getGroupMembersRecursive(String groupPath);
+
+    void forEachGroupMemberRecursive(String groupPath, Consumer<KeycloakUser> consumer);
 }
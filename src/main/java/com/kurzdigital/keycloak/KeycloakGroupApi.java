@@ -5,12 +5,24 @@ import org.keycloak.admin.client.resource.GroupsResource;
 import org.keycloak.admin.client.resource.RealmResource;
 import org.keycloak.representations.adapters.config.AdapterConfig;
 import org.keycloak.representations.idm.GroupRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.core.Response;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static com.kurzdigital.keycloak.ResponseHelper.*;
@@ -18,18 +30,39 @@ import static com.kurzdigital.keycloak.ResponseHelper.*;
 /**
  * An easy to use wrapper around the keycloak admin API group management rest calls.
  * <p>
+ * Groups can be addressed by their name (top-level groups only) or by their path, e.g. {@code /tenant/sales/emea}.
+ * Group trees are traversed concurrently, sibling subtrees are processed in parallel by a fork/join pool. The number
+ * of concurrent requests during such a traversal is limited.
+ * <p>
  * The {@link KeycloakGroupApi} uses a user session and must be closed (=logout for the given admin user) when no longer needed.
  * It is implemented as an {@link AutoCloseable}.
  */
 @SuppressWarnings("unused")
 public class KeycloakGroupApi extends AbstractKeycloakApi implements GroupApi {
     private static final Logger LOG = LoggerFactory.getLogger(KeycloakGroupApi.class);
+    private static final int DEFAULT_TRAVERSAL_PARALLELISM = 4;
+    private static final int MEMBERS_PAGE_SIZE = 100;
+
+    private final ForkJoinPool traversalPool;
+    private final Semaphore traversalRequests;
 
     /**
      * Creates a new {@link KeycloakGroupApi} instance. The given user must have realm-management rights on client realm-admin!
      */
     public KeycloakGroupApi(AdapterConfig keycloakConfiguration, String userName, String password) {
+        this(keycloakConfiguration, userName, password, DEFAULT_TRAVERSAL_PARALLELISM);
+    }
+
+    /**
+     * Creates a new {@link KeycloakGroupApi} instance. The given user must have realm-management rights on client realm-admin!
+     *
+     * @param traversalParallelism The maximum number of concurrent requests when traversing group trees
+     */
+    public KeycloakGroupApi(AdapterConfig keycloakConfiguration, String userName, String password, int traversalParallelism) {
         super(keycloakConfiguration, userName, password);
+        this.traversalPool = new ForkJoinPool(traversalParallelism);
+        // The pool adds threads while workers block in join, so the requests are limited separately
+        this.traversalRequests = new Semaphore(traversalParallelism);
     }
 
     /**
@@ -42,15 +75,85 @@ public class KeycloakGroupApi extends AbstractKeycloakApi implements GroupApi {
         GroupRepresentation groupRepresentation = new GroupRepresentation();
         groupRepresentation.setName(group);
         Response response = groupsResource.add(groupRepresentation);
+        invalidateReads();
         checkCreateResponse(group, response);
         String groupId = getIdFromLocation(response);
     }
 
+    /**
+     * Creates all groups of the given paths (e.g. {@code /tenant/sales/emea}) inside keycloak. Missing parent groups are
+     * created as well, groups which already exist are left untouched. Sibling groups are created concurrently.
+     * <p>
+     * When a request fails, no further groups are created and the failure is thrown once all running requests have finished.
+     */
+    @Override
+    public void createGroups(List<String> groupPaths) {
+        GroupNode root = new GroupNode();
+        for (String groupPath : groupPaths) {
+            GroupNode node = root;
+            for (String name : splitPath(groupPath)) {
+                node = node.children.computeIfAbsent(name, n -> new GroupNode());
+            }
+        }
+        // Not coalesced: a listing started before a concurrent createGroups finished would miss its groups
+        List<GroupRepresentation> topLevelGroups = retryWithException(getRealmResource().groups()::groups);
+        try {
+            traversalPool.invoke(new CreateGroupTask(null, topLevelGroups, null, root, new AtomicBoolean()));
+        } finally {
+            invalidateReads();
+        }
+    }
+
     /**
      * retrieves all members of the given group.
      */
     @Override
     public List<KeycloakUser> getGroupMembers(String groupName) {
+        // Coalesced callers share the fetched list, each of them gets its own copy
+        return new ArrayList<>(coalesce("getGroupMembers", groupName, () -> fetchGroupMembers(groupName)));
+    }
+
+    /**
+     * Retrieves all members of the group with the given path and of all its descendant groups.
+     * Users being member of several of these groups are contained only once.
+     */
+    @Override
+    public List<KeycloakUser> getGroupMembersRecursive(String groupPath) {
+        return new ArrayList<>(coalesce("getGroupMembersRecursive", groupPath, () -> {
+            ConcurrentLinkedQueue<KeycloakUser> members = new ConcurrentLinkedQueue<>();
+            forEachGroupMemberRecursive(groupPath, members::add);
+            return members;
+        }));
+    }
+
+    /**
+     * Passes each member of the group with the given path and of all its descendant groups to the given consumer,
+     * page by page as they are retrieved. Each user is passed only once, even when being member of several of these groups.
+     * <p>
+     * The consumer is called concurrently from multiple threads and must be thread-safe. It is no longer called once
+     * this method has returned, also when it failed.
+     */
+    @Override
+    public void forEachGroupMemberRecursive(String groupPath, Consumer<KeycloakUser> consumer) {
+        GroupRepresentation group = findGroup(fetchGroupTree(), splitPath(groupPath));
+        if (group == null) {
+            LOG.warn("Group " + groupPath + " not found in keycloak.");
+            return;
+        }
+        Set<String> seenUserIds = ConcurrentHashMap.newKeySet();
+        traversalPool.invoke(new MembersTask(group, seenUserIds, consumer, new AtomicBoolean()));
+    }
+
+    /**
+     * Shuts down the group traversal threads and logs out the admin user.
+     */
+    @Override
+    public void close() throws Exception {
+        traversalPool.shutdown();
+        super.close();
+    }
+
+    private List<KeycloakUser> fetchGroupMembers(String groupName) {
         RealmResource realm = getRealmResource();
         GroupsResource groups = realm.groups();
         List<GroupRepresentation> groupRepresentations = retryWithException(groups::groups);
@@ -63,4 +166,241 @@ public class KeycloakGroupApi extends AbstractKeycloakApi implements GroupApi {
         LOG.warn("Group " + groupName + " not found in keycloak.");
         return Collections.emptyList();
     }
+
+    /**
+     * Retrieves the top-level groups of the realm including all their subgroups. The listing is coalesced, but never
+     * shares a call started before a write on this instance finished (see {@link #invalidateReads()}).
+     */
+    private List<GroupRepresentation> fetchGroupTree() {
+        GroupsResource groups = getRealmResource().groups();
+        return coalesce("groups", null, () -> retryWithException(groups::groups));
+    }
+
+    private static GroupRepresentation findGroup(List<GroupRepresentation> groups, List<String> names) {
+        GroupRepresentation found = null;
+        for (String name : names) {
+            found = findByName(groups, name);
+            if (found == null) {
+                return null;
+            }
+            groups = subGroups(found);
+        }
+        return found;
+    }
+
+    private static GroupRepresentation findByName(List<GroupRepresentation> groups, String name) {
+        for (GroupRepresentation group : groups) {
+            if (group.getName().equals(name)) {
+                return group;
+            }
+        }
+        return null;
+    }
+
+    private static List<GroupRepresentation> subGroups(GroupRepresentation group) {
+        return group.getSubGroups() != null ? group.getSubGroups() : Collections.emptyList();
+    }
+
+    /**
+     * Executes the given request of a group tree traversal, waiting while the maximum number of requests is running.
+     */
+    private <R> R limited(SimpleReturnFunction<R> request) {
+        try {
+            traversalRequests.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to send a request.", e);
+        }
+        try {
+            return request.apply();
+        } finally {
+            traversalRequests.release();
+        }
+    }
+
+    private static List<String> splitPath(String groupPath) {
+        List<String> names = new ArrayList<>();
+        for (String name : groupPath.split("/")) {
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("Invalid group path " + groupPath);
+        }
+        return names;
+    }
+
+    /**
+     * The groups to be created, as a tree of group names.
+     */
+    private static final class GroupNode {
+        private final Map<String, GroupNode> children = new LinkedHashMap<>();
+    }
+
+    /**
+     * A task of a group tree traversal. When one task fails, the traversal is aborted: tasks which have not started
+     * yet do nothing and running tasks stop before their next request.
+     */
+    private abstract static class TraversalTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final AtomicBoolean aborted;
+
+        TraversalTask(AtomicBoolean aborted) {
+            this.aborted = aborted;
+        }
+
+        @Override
+        protected final void compute() {
+            if (aborted.get()) {
+                return;
+            }
+            try {
+                traverse();
+            } catch (RuntimeException | Error e) {
+                aborted.set(true);
+                throw e;
+            }
+        }
+
+        abstract void traverse();
+
+        /**
+         * Waits for all forked subtasks, even when some of them failed, so no subtask is running anymore once the
+         * traversal returns. Throws the given failure or else the first failure of the subtasks.
+         */
+        static void joinAll(List<? extends TraversalTask> subtasks, RuntimeException failure) {
+            for (TraversalTask subtask : subtasks) {
+                subtask.quietlyJoin();
+                Throwable subtaskFailure = subtask.getException();
+                if (failure == null && subtaskFailure != null) {
+                    failure = subtaskFailure instanceof RuntimeException
+                            ? (RuntimeException) subtaskFailure
+                            : new IllegalStateException(subtaskFailure);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Creates the group with the given name below the parent group, unless it exists already, and then creates its
+     * children concurrently. The root task has no name, it stands for the realm and only creates the top-level groups.
+     */
+    private final class CreateGroupTask extends TraversalTask {
+        private static final long serialVersionUID = 1L;
+
+        private final String parentId;
+        private final List<GroupRepresentation> siblings;
+        private final String name;
+        private final GroupNode node;
+
+        private CreateGroupTask(String parentId, List<GroupRepresentation> siblings, String name, GroupNode node, AtomicBoolean aborted) {
+            super(aborted);
+            this.parentId = parentId;
+            this.siblings = siblings;
+            this.name = name;
+            this.node = node;
+        }
+
+        @Override
+        void traverse() {
+            if (name == null) {
+                createChildren(parentId, siblings);
+                return;
+            }
+            GroupRepresentation group = findByName(siblings, name);
+            if (group == null) {
+                group = create();
+            }
+            createChildren(group.getId(), subGroups(group));
+        }
+
+        private void createChildren(String groupId, List<GroupRepresentation> existingChildren) {
+            List<CreateGroupTask> subtasks = node.children.entrySet().stream()
+                    .map(child -> new CreateGroupTask(groupId, existingChildren, child.getKey(), child.getValue(), aborted))
+                    .collect(Collectors.toList());
+            subtasks.forEach(CreateGroupTask::fork);
+            joinAll(subtasks, null);
+        }
+
+        private GroupRepresentation create() {
+            GroupsResource groups = getRealmResource().groups();
+            GroupRepresentation groupRepresentation = new GroupRepresentation();
+            groupRepresentation.setName(name);
+            Response response = limited(() -> retryOnWrongStatusCode(() -> parentId == null
+                    ? groups.add(groupRepresentation)
+                    : groups.group(parentId).subGroup(groupRepresentation)));
+            if (response.getStatus() == Response.Status.CONFLICT.getStatusCode()) {
+                // Created concurrently in the meantime, continue with the existing group
+                GroupRepresentation existing = findByName(limited(() -> fetchSiblings(groups)), name);
+                if (existing != null) {
+                    return existing;
+                }
+            }
+            checkCreateResponse(name, response);
+            groupRepresentation.setId(getIdFromLocation(response));
+            return groupRepresentation;
+        }
+
+        private List<GroupRepresentation> fetchSiblings(GroupsResource groups) {
+            if (parentId == null) {
+                return retryWithException(groups::groups);
+            }
+            return subGroups(retryWithException(groups.group(parentId)::toRepresentation));
+        }
+    }
+
+    /**
+     * Passes the not yet seen members of the given group to the consumer while its subgroups are traversed concurrently.
+     */
+    private final class MembersTask extends TraversalTask {
+        private static final long serialVersionUID = 1L;
+
+        private final GroupRepresentation group;
+        private final Set<String> seenUserIds;
+        private final Consumer<KeycloakUser> consumer;
+
+        private MembersTask(GroupRepresentation group, Set<String> seenUserIds, Consumer<KeycloakUser> consumer, AtomicBoolean aborted) {
+            super(aborted);
+            this.group = group;
+            this.seenUserIds = seenUserIds;
+            this.consumer = consumer;
+        }
+
+        @Override
+        void traverse() {
+            List<MembersTask> subtasks = subGroups(group).stream()
+                    .map(subGroup -> new MembersTask(subGroup, seenUserIds, consumer, aborted))
+                    .collect(Collectors.toList());
+            subtasks.forEach(MembersTask::fork);
+            RuntimeException failure = null;
+            try {
+                passMembers();
+            } catch (RuntimeException e) {
+                aborted.set(true);
+                failure = e;
+            }
+            joinAll(subtasks, failure);
+        }
+
+        private void passMembers() {
+            GroupResource groupResource = getRealmResource().groups().group(group.getId());
+            int first = 0;
+            List<UserRepresentation> page;
+            do {
+                int pageStart = first;
+                page = limited(() -> retryWithException(() -> groupResource.members(pageStart, MEMBERS_PAGE_SIZE)));
+                for (UserRepresentation user : page) {
+                    if (seenUserIds.add(user.getId())) {
+                        consumer.accept(KeycloakUserMapper.map(user, Collections.emptyList(), Collections.emptyList()));
+                    }
+                }
+                first += MEMBERS_PAGE_SIZE;
+            } while (page.size() == MEMBERS_PAGE_SIZE && !aborted.get());
+        }
+    }
 }
@@ -5,6 +5,8 @@ import org.keycloak.admin.client.resource.UserResource;
 import org.keycloak.admin.client.resource.UsersResource;
 import org.keycloak.representations.adapters.config.AdapterConfig;
 import org.keycloak.representations.idm.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.NotFoundException;
 import javax.ws.rs.core.Response;
@@ -12,6 +14,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * An easy to use wrapper around the keycloak admin API user management rest calls.
@@ -21,12 +24,32 @@ import java.util.Set;
  */
 @SuppressWarnings("unused")
 public class KeycloakUserApi extends AbstractKeycloakApi implements UserApi {
+    private static final Logger LOG = LoggerFactory.getLogger(KeycloakUserApi.class);
+
+    private final WriteBehindQueue writeQueue;
 
     /**
      * Creates a new {@link KeycloakUserApi} instance. The given user must have realm-management rights on client realm-admin!
      */
     public KeycloakUserApi(AdapterConfig keycloakConfiguration, String userName, String password) {
         super(keycloakConfiguration, userName, password);
+        this.writeQueue = null;
+    }
+
+    /**
+     * Creates a new {@link KeycloakUserApi} instance with asynchronous writes. The given user must have realm-management rights on client realm-admin!
+     * <p>
+     * {@link #disableUser(String)}, {@link #enableUser(String)}, {@link #forgotPassword(String)} and {@link #updatePassword(String, String)}
+     * are queued and return immediately. Queued writes for the same user are collapsed, e.g. a disable followed by an enable only
+     * executes the enable. A user's writes are executed in the order they were submitted. Failures are logged, the *Async variants
+     * return futures to observe them instead. All queued writes are executed before {@link #close()} logs out.
+     *
+     * @param writeParallelism The maximum number of users whose writes are executed in parallel
+     * @param writeCapacity    The maximum number of pending writes; further writes block until queued ones have completed
+     */
+    public KeycloakUserApi(AdapterConfig keycloakConfiguration, String userName, String password, int writeParallelism, int writeCapacity) {
+        super(keycloakConfiguration, userName, password);
+        this.writeQueue = new WriteBehindQueue(writeParallelism, writeCapacity);
     }
 
     /**
@@ -36,17 +59,7 @@ public class KeycloakUserApi extends AbstractKeycloakApi implements UserApi {
      */
     @Override
     public KeycloakUser getUser(String userId) {
-        RealmResource realm = getRealmResource();
-        UserResource userResource = realm.users().get(userId);
-        UserRepresentation userRepresentation;
-        try {
-            userRepresentation = ResponseHelper.retryWithException(userResource::toRepresentation);
-        } catch (NotFoundException e) {
-            return null;
-        }
-        List<GroupRepresentation> groups = userResource.groups();
-        List<RoleRepresentation> roles = userResource.roles().clientLevel(getClientUUID()).listEffective();
-        return KeycloakUserMapper.map(userRepresentation, groups, roles);
+        return copy(coalesce("getUser", userId, () -> fetchUser(userId)));
     }
 
     /**
@@ -54,17 +67,7 @@ public class KeycloakUserApi extends AbstractKeycloakApi implements UserApi {
      */
     @Override
     public KeycloakUser findUserByEmail(String email) {
-        RealmResource realm = getRealmResource();
-        UsersResource usersResource = realm.users();
-        List<UserRepresentation> users = ResponseHelper.retryWithException(() -> usersResource.search(null, null, null, email, null, null));
-        if (users.isEmpty()) {
-            return null;
-        }
-        UserRepresentation userRepresentation = users.get(0);
-        UserResource userResource = usersResource.get(userRepresentation.getId());
-        List<GroupRepresentation> groups = userResource.groups();
-        List<RoleRepresentation> roles = userResource.roles().clientLevel(getClientUUID()).listEffective();
-        return KeycloakUserMapper.map(userRepresentation, groups, roles);
+        return copy(coalesce("findUserByEmail", email, () -> fetchUserByEmail(email)));
     }
 
     /**
@@ -87,8 +90,28 @@ public class KeycloakUserApi extends AbstractKeycloakApi implements UserApi {
     @Override
     public KeycloakUser createUser(KeycloakUser user, String password)
             throws MailAlreadyExistsException, UnsupportedLocaleException {
+        try {
+            return create(user, password);
+        } finally {
+            invalidateReads();
+        }
+    }
+
+    /**
+     * Updates the keycloak user with the new data in the given user object.
+     */
+    @Override
+    public void updateUser(KeycloakUser user) throws UnsupportedLocaleException {
+        try {
+            update(user);
+        } finally {
+            invalidateReads();
+        }
+    }
+
+    private KeycloakUser create(KeycloakUser user, String password) {
         RealmResource realm = getRealmResource();
-        validateLocales(realm.toRepresentation(), user.getLocale());
+        validateLocales(getRealmRepresentation(), user.getLocale());
         UsersResource usersResource = realm.users();
         UserRepresentation userRepresentation = KeycloakUserMapper.map(user);
         UserRepresentation finalUserRepresentation = userRepresentation;
@@ -119,13 +142,9 @@ public class KeycloakUserApi extends AbstractKeycloakApi implements UserApi {
         return KeycloakUserMapper.map(userRepresentation, joinedGroups, roles);
     }
 
-    /**
-     * Updates the keycloak user with the new data in the given user object.
-     */
-    @Override
-    public void updateUser(KeycloakUser user) throws UnsupportedLocaleException {
+    private void update(KeycloakUser user) {
         RealmResource realm = getRealmResource();
-        validateLocales(realm.toRepresentation(), user.getLocale());
+        validateLocales(getRealmRepresentation(), user.getLocale());
         UsersResource usersResource = realm.users();
         UserResource userResource = usersResource.get(user.getId());
         UserRepresentation userRepresentation = userResource.toRepresentation();
@@ -142,14 +161,7 @@ public class KeycloakUserApi extends AbstractKeycloakApi implements UserApi {
      */
     @Override
     public void updatePassword(String password, String keycloakUserId) {
-        RealmResource realm = getRealmResource();
-        UsersResource usersResource = realm.users();
-        UserResource userResource = usersResource.get(keycloakUserId);
-        CredentialRepresentation credentialRepresentation = new CredentialRepresentation();
-        credentialRepresentation.setType(CredentialRepresentation.PASSWORD);
-        credentialRepresentation.setValue(password);
-        credentialRepresentation.setTemporary(false);
-        userResource.resetPassword(credentialRepresentation);
+        write(keycloakUserId, "password", () -> resetPassword(password, keycloakUserId));
     }
 
     /**
@@ -157,10 +169,7 @@ public class KeycloakUserApi extends AbstractKeycloakApi implements UserApi {
      */
     @Override
     public void forgotPassword(String keycloakId) {
-        RealmResource realm = getRealmResource();
-        UsersResource usersResource = realm.users();
-        UserResource userResource = usersResource.get(keycloakId);
-        userResource.executeActionsEmail(Collections.singletonList("UPDATE_PASSWORD"));
+        write(keycloakId, "forgotPassword", () -> sendUpdatePasswordEmail(keycloakId));
     }
 
     /**
@@ -168,7 +177,7 @@ public class KeycloakUserApi extends AbstractKeycloakApi implements UserApi {
      */
     @Override
     public void disableUser(String keycloakUserId) {
-        enableDisableUser(keycloakUserId, false);
+        write(keycloakUserId, "enabled", () -> enableDisableUser(keycloakUserId, false));
     }
 
     /**
@@ -176,7 +185,107 @@ public class KeycloakUserApi extends AbstractKeycloakApi implements UserApi {
      */
     @Override
     public void enableUser(String keycloakUserId) {
-        enableDisableUser(keycloakUserId, true);
+        write(keycloakUserId, "enabled", () -> enableDisableUser(keycloakUserId, true));
+    }
+
+    /**
+     * Sets a new password for the user with the given keycloakUserId.
+     * A queued password update for the same user is replaced by this one.
+     *
+     * @return A future completed when the password was set, or completed exceptionally when it failed.
+     * Without asynchronous writes the password is set before returning.
+     */
+    public CompletableFuture<Void> updatePasswordAsync(String password, String keycloakUserId) {
+        return writeAsync(keycloakUserId, "password", () -> resetPassword(password, keycloakUserId));
+    }
+
+    /**
+     * Triggers a new update password email for the user with the given keycloakUserId.
+     * Multiple queued requests for the same user send only one email.
+     *
+     * @return A future completed when the email was triggered, or completed exceptionally when it failed.
+     * Without asynchronous writes the email is triggered before returning.
+     */
+    public CompletableFuture<Void> forgotPasswordAsync(String keycloakId) {
+        return writeAsync(keycloakId, "forgotPassword", () -> sendUpdatePasswordEmail(keycloakId));
+    }
+
+    /**
+     * Disables the given user. A queued enable for the same user is replaced by this one.
+     *
+     * @return A future completed when the user was disabled, or completed exceptionally when it failed.
+     * Without asynchronous writes the user is disabled before returning.
+     */
+    public CompletableFuture<Void> disableUserAsync(String keycloakUserId) {
+        return writeAsync(keycloakUserId, "enabled", () -> enableDisableUser(keycloakUserId, false));
+    }
+
+    /**
+     * Enables the given user. A queued disable for the same user is replaced by this one.
+     *
+     * @return A future completed when the user was enabled, or completed exceptionally when it failed.
+     * Without asynchronous writes the user is enabled before returning.
+     */
+    public CompletableFuture<Void> enableUserAsync(String keycloakUserId) {
+        return writeAsync(keycloakUserId, "enabled", () -> enableDisableUser(keycloakUserId, true));
+    }
+
+    /**
+     * Blocks until all asynchronous writes submitted before this call have been executed. Does nothing without asynchronous writes.
+     */
+    public void flushWrites() throws InterruptedException {
+        if (writeQueue != null) {
+            writeQueue.flush();
+        }
+    }
+
+    /**
+     * Executes all queued asynchronous writes and logs out the admin user.
+     */
+    @Override
+    public void close() throws Exception {
+        try {
+            if (writeQueue != null) {
+                writeQueue.close();
+            }
+        } finally {
+            super.close();
+        }
+    }
+
+    /**
+     * Coalesced callers share the fetched user, each of them gets its own copy of the mutable group and role lists.
+     */
+    private static KeycloakUser copy(KeycloakUser user) {
+        return user != null ? user.toBuilder().build() : null;
+    }
+
+    private KeycloakUser fetchUser(String userId) {
+        RealmResource realm = getRealmResource();
+        UserResource userResource = realm.users().get(userId);
+        UserRepresentation userRepresentation;
+        try {
+            userRepresentation = ResponseHelper.retryWithException(userResource::toRepresentation);
+        } catch (NotFoundException e) {
+            return null;
+        }
+        List<GroupRepresentation> groups = userResource.groups();
+        List<RoleRepresentation> roles = userResource.roles().clientLevel(getClientUUID()).listEffective();
+        return KeycloakUserMapper.map(userRepresentation, groups, roles);
+    }
+
+    private KeycloakUser fetchUserByEmail(String email) {
+        RealmResource realm = getRealmResource();
+        UsersResource usersResource = realm.users();
+        List<UserRepresentation> users = ResponseHelper.retryWithException(() -> usersResource.search(null, null, null, email, null, null));
+        if (users.isEmpty()) {
+            return null;
+        }
+        UserRepresentation userRepresentation = users.get(0);
+        UserResource userResource = usersResource.get(userRepresentation.getId());
+        List<GroupRepresentation> groups = userResource.groups();
+        List<RoleRepresentation> roles = userResource.roles().clientLevel(getClientUUID()).listEffective();
+        return KeycloakUserMapper.map(userRepresentation, groups, roles);
     }
 
     private List<GroupRepresentation> updateGroups(KeycloakUser user, RealmResource realm, UsersResource usersResource, String userId) {
@@ -198,11 +307,72 @@ public class KeycloakUserApi extends AbstractKeycloakApi implements UserApi {
         return joinedGroups;
     }
 
+    /**
+     * Executes the given write, or queues it with asynchronous writes. Failures of queued writes are logged, as nobody
+     * else observes them.
+     */
+    private void write(String keycloakUserId, String slot, Runnable write) {
+        Runnable operation = invalidatingReads(write);
+        if (writeQueue == null) {
+            operation.run();
+            return;
+        }
+        writeQueue.submit(keycloakUserId, slot, operation).whenComplete((ignore, e) -> {
+            if (e != null) {
+                LOG.warn("Asynchronous write for user " + keycloakUserId + " failed.", e);
+            }
+        });
+    }
+
+    private CompletableFuture<Void> writeAsync(String keycloakUserId, String slot, Runnable write) {
+        Runnable operation = invalidatingReads(write);
+        try {
+            if (writeQueue != null) {
+                return writeQueue.submit(keycloakUserId, slot, operation);
+            }
+            operation.run();
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private Runnable invalidatingReads(Runnable write) {
+        return () -> {
+            try {
+                write.run();
+            } finally {
+                invalidateReads();
+            }
+        };
+    }
+
+    private void resetPassword(String password, String keycloakUserId) {
+        RealmResource realm = getRealmResource();
+        UsersResource usersResource = realm.users();
+        UserResource userResource = usersResource.get(keycloakUserId);
+        CredentialRepresentation credentialRepresentation = new CredentialRepresentation();
+        credentialRepresentation.setType(CredentialRepresentation.PASSWORD);
+        credentialRepresentation.setValue(password);
+        credentialRepresentation.setTemporary(false);
+        userResource.resetPassword(credentialRepresentation);
+    }
+
+    private void sendUpdatePasswordEmail(String keycloakId) {
+        RealmResource realm = getRealmResource();
+        UsersResource usersResource = realm.users();
+        UserResource userResource = usersResource.get(keycloakId);
+        userResource.executeActionsEmail(Collections.singletonList("UPDATE_PASSWORD"));
+    }
+
     private void enableDisableUser(String keycloakUserId, boolean enabled) {
         RealmResource realm = getRealmResource();
         UsersResource usersResource = realm.users();
         UserResource userResource = usersResource.get(keycloakUserId);
-        UserRepresentation userRepresentation = userResource.toRepresentation();
+        // Only send the enabled flag, so concurrent updates of other attributes are not overwritten with stale values
+        UserRepresentation userRepresentation = new UserRepresentation();
         userRepresentation.setEnabled(enabled);
         userResource.update(userRepresentation);
     }
@@ -217,7 +387,8 @@ public class KeycloakUserApi extends AbstractKeycloakApi implements UserApi {
     }
 
     private ClientRepresentation getClient() {
-        return getRealmResource().clients().findByClientId(keycloakConfiguration.getResource()).get(0);
+        String clientId = keycloakConfiguration.getResource();
+        return coalesce("getClient", clientId, () -> getRealmResource().clients().findByClientId(clientId).get(0));
     }
 
     private void validateLocales(RealmRepresentation realmRepresentation, String givenLocale)
@@ -0,0 +1,87 @@
+package com.kurzdigital.keycloak;
+
+import com.kurzdigital.keycloak.ResponseHelper.SimpleReturnFunction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Coalesces concurrent identical reads: while a call for a key is in flight, further callers with the same key
+ * wait for that call and share its result or exception instead of issuing their own admin requests.
+ * <p>
+ * The in-flight calls are kept in lock-striped maps, so callers with unrelated keys do not contend.
+ * Results are not cached; once a call has finished the next caller for the key triggers a new one.
+ */
+final class RequestCoalescer {
+    private static final int DEFAULT_STRIPES = 16;
+
+    private final List<Map<Object, CompletableFuture<Object>>> inFlight;
+
+    RequestCoalescer() {
+        this(DEFAULT_STRIPES);
+    }
+
+    RequestCoalescer(int stripes) {
+        inFlight = new ArrayList<>(stripes);
+        for (int i = 0; i < stripes; i++) {
+            inFlight.add(new HashMap<>());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    <R> R coalesce(Object key, SimpleReturnFunction<R> function) {
+        Map<Object, CompletableFuture<Object>> stripe = inFlight.get((key.hashCode() & 0x7fffffff) % inFlight.size());
+        CompletableFuture<Object> future;
+        boolean leader = false;
+        synchronized (stripe) {
+            future = stripe.get(key);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                stripe.put(key, future);
+                leader = true;
+            }
+        }
+        if (!leader) {
+            return (R) await(future);
+        }
+        R result;
+        try {
+            result = function.apply();
+        } catch (Throwable e) {
+            release(stripe, key);
+            future.completeExceptionally(e);
+            throw e;
+        }
+        release(stripe, key);
+        future.complete(result);
+        return result;
+    }
+
+    /**
+     * Removes the key before the future is completed, so no caller can join a call which has already finished.
+     */
+    private static void release(Map<Object, CompletableFuture<Object>> stripe, Object key) {
+        synchronized (stripe) {
+            stripe.remove(key);
+        }
+    }
+
+    private static Object await(CompletableFuture<Object> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
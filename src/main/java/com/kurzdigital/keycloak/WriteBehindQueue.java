@@ -0,0 +1,182 @@
+package com.kurzdigital.keycloak;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queues fire-and-forget write operations and executes them asynchronously.
+ * <p>
+ * Operations are grouped per user and per slot. A newer operation for the same user and slot supersedes a queued
+ * older one (e.g. disable followed by enable only executes the enable); the futures of superseded operations
+ * complete together with the operation that replaced them. Operations of one user are executed sequentially in
+ * the order they were submitted, a superseding operation takes the place of its latest submit. Different users are
+ * drained in parallel by at most {@code parallelism} threads; each task executes one batch of a user's writes, so a
+ * busy user does not hold a thread while other users wait. When {@code capacity} operations are pending, further
+ * submits block until operations have completed.
+ * <p>
+ * Failures are only reported through the returned futures.
+ */
+final class WriteBehindQueue implements AutoCloseable {
+    private final ExecutorService executor;
+    private final Semaphore capacity;
+    private final Map<String, Map<String, PendingWrite>> pending = new HashMap<>();
+    private final Set<String> draining = new HashSet<>();
+    private final Set<CompletableFuture<Void>> incomplete = new HashSet<>();
+    private boolean closed;
+
+    WriteBehindQueue(int parallelism, int capacity) {
+        if (parallelism < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Parallelism and capacity must be positive.");
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "keycloak-write-behind-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.capacity = new Semaphore(capacity);
+    }
+
+    /**
+     * Queues the given write. Blocks while the queue is full.
+     *
+     * @param userId    The keycloak user id the write belongs to
+     * @param slot      The kind of write; a queued write of the same user and slot is superseded by this one
+     * @param operation The write to execute
+     * @return A future completed when the write (or the write superseding it) was executed
+     */
+    CompletableFuture<Void> submit(String userId, String slot, Runnable operation) {
+        try {
+            capacity.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for write queue capacity.", e);
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (this) {
+            if (closed) {
+                capacity.release();
+                throw new IllegalStateException("Write queue is already closed.");
+            }
+            Map<String, PendingWrite> userWrites = pending.computeIfAbsent(userId, id -> new LinkedHashMap<>());
+            // Re-insert a superseded write, so the execution order follows the latest submit
+            PendingWrite write = userWrites.remove(slot);
+            if (write == null) {
+                write = new PendingWrite();
+            }
+            userWrites.put(slot, write);
+            write.operation = operation;
+            write.futures.add(future);
+            incomplete.add(future);
+            if (draining.add(userId)) {
+                executor.execute(() -> drain(userId));
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Blocks until all writes submitted before this call have been executed. Writes submitted afterwards are not awaited.
+     */
+    void flush() throws InterruptedException {
+        CompletableFuture<?>[] submitted;
+        synchronized (this) {
+            submitted = incomplete.toArray(new CompletableFuture<?>[0]);
+        }
+        try {
+            CompletableFuture.allOf(submitted).get();
+        } catch (ExecutionException ignore) {
+            // Failures are reported through the futures of the failed writes
+        }
+    }
+
+    /**
+     * Stops accepting new writes, executes all queued writes and shuts the worker threads down.
+     * <p>
+     * When interrupted, the interrupt flag is restored and writes which have not been started yet fail.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        try {
+            flush();
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdown();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Executes one batch of the user's writes and schedules another task if more writes arrived meanwhile.
+     */
+    private void drain(String userId) {
+        Map<String, PendingWrite> userWrites;
+        synchronized (this) {
+            userWrites = pending.remove(userId);
+        }
+        userWrites.values().forEach(this::execute);
+        synchronized (this) {
+            if (!pending.containsKey(userId)) {
+                draining.remove(userId);
+                return;
+            }
+        }
+        try {
+            executor.execute(() -> drain(userId));
+        } catch (RejectedExecutionException e) {
+            // Shut down by an interrupted close
+            Map<String, PendingWrite> rejected;
+            synchronized (this) {
+                rejected = pending.remove(userId);
+                draining.remove(userId);
+            }
+            rejected.values().forEach(write -> complete(write, e));
+        }
+    }
+
+    private void execute(PendingWrite write) {
+        Throwable failure = null;
+        try {
+            write.operation.run();
+        } catch (Throwable e) {
+            failure = e;
+        }
+        complete(write, failure);
+    }
+
+    private void complete(PendingWrite write, Throwable failure) {
+        synchronized (this) {
+            incomplete.removeAll(write.futures);
+        }
+        capacity.release(write.futures.size());
+        for (CompletableFuture<Void> future : write.futures) {
+            if (failure == null) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    private static final class PendingWrite {
+        private Runnable operation;
+        private final List<CompletableFuture<Void>> futures = new ArrayList<>();
+    }
+}
@@ -0,0 +1,301 @@
+package com.kurzdigital.keycloak;
+
+import org.junit.Test;
+import org.keycloak.admin.client.resource.GroupResource;
+import org.keycloak.admin.client.resource.GroupsResource;
+import org.keycloak.admin.client.resource.RealmResource;
+import org.keycloak.admin.client.resource.UsersResource;
+import org.keycloak.representations.adapters.config.AdapterConfig;
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import javax.ws.rs.core.Response;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class KeycloakGroupApiTest {
+
+    private final FakeRealm fakeRealm = new FakeRealm();
+    private final KeycloakGroupApi groupApi = createGroupApi();
+
+    @Test
+    public void createGroupsMergesPathsIntoOneTree() {
+        groupApi.createGroups(Arrays.asList("/tenant/sales/emea", "/tenant/sales/apac", "tenant/it", "//tenant//it/"));
+
+        assertEquals(paths("/tenant", "/tenant/it", "/tenant/sales", "/tenant/sales/apac", "/tenant/sales/emea"), fakeRealm.paths());
+        assertEquals(5, fakeRealm.creates.get());
+    }
+
+    @Test
+    public void createGroupsReusesExistingGroups() {
+        fakeRealm.addGroup("/tenant/sales");
+
+        groupApi.createGroups(Collections.singletonList("/tenant/sales/emea"));
+
+        assertEquals(paths("/tenant", "/tenant/sales", "/tenant/sales/emea"), fakeRealm.paths());
+        assertEquals(1, fakeRealm.creates.get());
+    }
+
+    @Test
+    public void createGroupsContinuesWithConcurrentlyCreatedGroup() {
+        fakeRealm.afterNextListing = () -> fakeRealm.addGroup("/tenant");
+
+        groupApi.createGroups(Collections.singletonList("/tenant/sales"));
+
+        assertEquals(paths("/tenant", "/tenant/sales"), fakeRealm.paths());
+        assertEquals(1, fakeRealm.creates.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pathWithoutGroupNamesIsRejected() {
+        groupApi.createGroups(Collections.singletonList("/"));
+    }
+
+    @Test
+    public void membersAreDeduplicatedAcrossSubgroups() {
+        fakeRealm.addGroup("/tenant").members.add(user("u1"));
+        fakeRealm.addGroup("/tenant/a").members.addAll(Arrays.asList(user("u1"), user("u2")));
+        fakeRealm.addGroup("/tenant/a/deep").members.add(user("u3"));
+        fakeRealm.addGroup("/tenant/b").members.addAll(Arrays.asList(user("u2"), user("u3")));
+
+        List<KeycloakUser> members = groupApi.getGroupMembersRecursive("/tenant");
+
+        assertEquals(3, members.size());
+        assertEquals(new HashSet<>(Arrays.asList("u1", "u2", "u3")), members.stream().map(KeycloakUser::getId).collect(Collectors.toSet()));
+    }
+
+    @Test
+    public void membersArePagedBeyondPageSize() {
+        FakeGroup group = fakeRealm.addGroup("/tenant");
+        for (int i = 0; i < 250; i++) {
+            group.members.add(user("u" + i));
+        }
+
+        assertEquals(250, groupApi.getGroupMembersRecursive("/tenant").size());
+    }
+
+    @Test
+    public void unknownGroupHasNoMembers() {
+        fakeRealm.addGroup("/tenant");
+
+        assertEquals(Collections.emptyList(), groupApi.getGroupMembersRecursive("/tenant/unknown"));
+    }
+
+    @Test
+    public void failingSubgroupFailsTraversalOnceAllRequestsHaveFinished() {
+        CountDownLatch failed = new CountDownLatch(1);
+        fakeRealm.addGroup("/tenant");
+        fakeRealm.addGroup("/tenant/failing").onMembers = () -> {
+            failed.countDown();
+            throw new IllegalStateException("failed");
+        };
+        fakeRealm.addGroup("/tenant/slow").onMembers = () -> await(failed);
+
+        try {
+            groupApi.forEachGroupMemberRecursive("/tenant", user -> {
+            });
+            fail("Traversal should have failed.");
+        } catch (RuntimeException expected) {
+            assertEquals(0, fakeRealm.runningMemberRequests.get());
+        }
+    }
+
+    private KeycloakGroupApi createGroupApi() {
+        AdapterConfig config = new AdapterConfig();
+        config.setAuthServerUrl("http://localhost:8080/auth");
+        config.setRealm("test");
+        config.setResource("test-client");
+        return new KeycloakGroupApi(config, "admin", "secret", 2) {
+            @Override
+            public RealmResource getRealmResource() {
+                return fakeRealm.resource();
+            }
+        };
+    }
+
+    private static Set<String> paths(String... paths) {
+        return new TreeSet<>(Arrays.asList(paths));
+    }
+
+    private static UserRepresentation user(String id) {
+        UserRepresentation user = new UserRepresentation();
+        user.setId(id);
+        user.setUsername(id);
+        return user;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static <T> T fake(Class<T> type, BiFunction<String, Object[], Object> handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> handler.apply(method.getName(), args)));
+    }
+
+    private static final class FakeGroup {
+        private final String id = UUID.randomUUID().toString();
+        private final String name;
+        private final String path;
+        private final List<FakeGroup> children = new CopyOnWriteArrayList<>();
+        private final List<UserRepresentation> members = new CopyOnWriteArrayList<>();
+        private volatile Runnable onMembers = () -> {
+        };
+
+        private FakeGroup(String name, String path) {
+            this.name = name;
+            this.path = path;
+        }
+    }
+
+    /**
+     * An in-memory group tree behind fake admin client resources.
+     */
+    private static final class FakeRealm {
+        private final List<FakeGroup> topLevelGroups = new CopyOnWriteArrayList<>();
+        private final AtomicInteger creates = new AtomicInteger();
+        private final AtomicInteger runningMemberRequests = new AtomicInteger();
+        private volatile Runnable afterNextListing;
+
+        FakeGroup addGroup(String path) {
+            List<FakeGroup> siblings = topLevelGroups;
+            FakeGroup group = null;
+            for (String name : path.substring(1).split("/")) {
+                FakeGroup parent = group;
+                group = find(siblings, name);
+                if (group == null) {
+                    group = new FakeGroup(name, (parent == null ? "" : parent.path) + "/" + name);
+                    siblings.add(group);
+                }
+                siblings = group.children;
+            }
+            return group;
+        }
+
+        Set<String> paths() {
+            Set<String> paths = new TreeSet<>();
+            collectPaths(topLevelGroups, paths);
+            return paths;
+        }
+
+        RealmResource resource() {
+            return fake(RealmResource.class, (method, args) -> {
+                switch (method) {
+                    case "groups":
+                        return groupsResource();
+                    case "users":
+                        return fake(UsersResource.class, (usersMethod, usersArgs) -> Collections.emptyList());
+                    default:
+                        throw new UnsupportedOperationException(method);
+                }
+            });
+        }
+
+        private GroupsResource groupsResource() {
+            return fake(GroupsResource.class, (method, args) -> {
+                switch (method) {
+                    case "groups":
+                        List<GroupRepresentation> groups = representations(topLevelGroups);
+                        Runnable listed = afterNextListing;
+                        afterNextListing = null;
+                        if (listed != null) {
+                            listed.run();
+                        }
+                        return groups;
+                    case "group":
+                        return groupResource(findById(topLevelGroups, (String) args[0]));
+                    case "add":
+                        return create(topLevelGroups, "", (GroupRepresentation) args[0]);
+                    default:
+                        throw new UnsupportedOperationException(method);
+                }
+            });
+        }
+
+        private GroupResource groupResource(FakeGroup group) {
+            return fake(GroupResource.class, (method, args) -> {
+                switch (method) {
+                    case "members":
+                        runningMemberRequests.incrementAndGet();
+                        try {
+                            group.onMembers.run();
+                            int first = (Integer) args[0];
+                            int max = (Integer) args[1];
+                            return new ArrayList<>(group.members.subList(Math.min(first, group.members.size()), Math.min(first + max, group.members.size())));
+                        } finally {
+                            runningMemberRequests.decrementAndGet();
+                        }
+                    case "subGroup":
+                        return create(group.children, group.path, (GroupRepresentation) args[0]);
+                    case "toRepresentation":
+                        return representation(group);
+                    default:
+                        throw new UnsupportedOperationException(method);
+                }
+            });
+        }
+
+        private synchronized Response create(List<FakeGroup> siblings, String parentPath, GroupRepresentation representation) {
+            if (find(siblings, representation.getName()) != null) {
+                return Response.status(Response.Status.CONFLICT).build();
+            }
+            FakeGroup group = new FakeGroup(representation.getName(), parentPath + "/" + representation.getName());
+            siblings.add(group);
+            creates.incrementAndGet();
+            return Response.status(Response.Status.CREATED).header("Location", "http://localhost/groups/" + group.id).build();
+        }
+
+        private static FakeGroup find(List<FakeGroup> groups, String name) {
+            return groups.stream().filter(group -> group.name.equals(name)).findFirst().orElse(null);
+        }
+
+        private static FakeGroup findById(List<FakeGroup> groups, String id) {
+            for (FakeGroup group : groups) {
+                FakeGroup found = group.id.equals(id) ? group : findById(group.children, id);
+                if (found != null) {
+                    return found;
+                }
+            }
+            return null;
+        }
+
+        private static void collectPaths(List<FakeGroup> groups, Set<String> paths) {
+            for (FakeGroup group : groups) {
+                paths.add(group.path);
+                collectPaths(group.children, paths);
+            }
+        }
+
+        private static List<GroupRepresentation> representations(List<FakeGroup> groups) {
+            return groups.stream().map(FakeRealm::representation).collect(Collectors.toList());
+        }
+
+        private static GroupRepresentation representation(FakeGroup group) {
+            GroupRepresentation representation = new GroupRepresentation();
+            representation.setId(group.id);
+            representation.setName(group.name);
+            representation.setPath(group.path);
+            representation.setSubGroups(representations(group.children));
+            return representation;
+        }
+    }
+}
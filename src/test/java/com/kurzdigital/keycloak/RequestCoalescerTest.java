@@ -0,0 +1,125 @@
+package com.kurzdigital.keycloak;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class RequestCoalescerTest {
+
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+
+    @Test
+    public void concurrentCallersWithSameKeyShareOneCall() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        AtomicReference<Object> leaderResult = new AtomicReference<>();
+        AtomicReference<Object> followerResult = new AtomicReference<>();
+
+        Thread leader = new Thread(() -> leaderResult.set(coalescer.coalesce("key", () -> {
+            calls.incrementAndGet();
+            started.countDown();
+            await(release);
+            return "result";
+        })));
+        leader.start();
+        started.await();
+        Thread follower = new Thread(() -> followerResult.set(coalescer.coalesce("key", () -> {
+            calls.incrementAndGet();
+            return "other";
+        })));
+        follower.start();
+        awaitWaiting(follower);
+        release.countDown();
+        leader.join();
+        follower.join();
+
+        assertEquals(1, calls.get());
+        assertEquals("result", leaderResult.get());
+        assertEquals("result", followerResult.get());
+    }
+
+    @Test
+    public void exceptionIsPropagatedToAllCallers() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        IllegalStateException failure = new IllegalStateException("failed");
+        AtomicReference<Throwable> leaderFailure = new AtomicReference<>();
+        AtomicReference<Throwable> followerFailure = new AtomicReference<>();
+
+        Thread leader = new Thread(() -> {
+            try {
+                coalescer.coalesce("key", () -> {
+                    started.countDown();
+                    await(release);
+                    throw failure;
+                });
+            } catch (Throwable e) {
+                leaderFailure.set(e);
+            }
+        });
+        leader.start();
+        started.await();
+        Thread follower = new Thread(() -> {
+            try {
+                coalescer.coalesce("key", () -> "other");
+            } catch (Throwable e) {
+                followerFailure.set(e);
+            }
+        });
+        follower.start();
+        awaitWaiting(follower);
+        release.countDown();
+        leader.join();
+        follower.join();
+
+        assertSame(failure, leaderFailure.get());
+        assertSame(failure, followerFailure.get());
+    }
+
+    @Test
+    public void finishedCallsAreNotCached() {
+        AtomicInteger calls = new AtomicInteger();
+
+        coalescer.coalesce("key", calls::incrementAndGet);
+        coalescer.coalesce("key", calls::incrementAndGet);
+
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void callersWithDifferentKeysDoNotShareCalls() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread blocked = new Thread(() -> coalescer.coalesce("key", () -> {
+            started.countDown();
+            await(release);
+            return "blocked";
+        }));
+        blocked.start();
+        started.await();
+
+        assertEquals("other", coalescer.coalesce("otherKey", () -> "other"));
+
+        release.countDown();
+        blocked.join();
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
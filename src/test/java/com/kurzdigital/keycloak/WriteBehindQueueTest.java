@@ -0,0 +1,195 @@
+package com.kurzdigital.keycloak;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class WriteBehindQueueTest {
+
+    private final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    public void disableFollowedByEnableOnlyExecutesEnable() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(1, 10);
+        CountDownLatch release = new CountDownLatch(1);
+        submitBlocking(queue, "user", "block", release);
+        CompletableFuture<Void> disable = queue.submit("user", "enabled", record("disable"));
+        CompletableFuture<Void> enable = queue.submit("user", "enabled", record("enable"));
+
+        release.countDown();
+        queue.close();
+
+        assertEquals(Arrays.asList("block", "enable"), executed);
+        assertTrue(disable.isDone() && !disable.isCompletedExceptionally());
+        assertTrue(enable.isDone() && !enable.isCompletedExceptionally());
+    }
+
+    @Test
+    public void writesOfUserAreExecutedInOrderOfLatestSubmit() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(1, 10);
+        CountDownLatch release = new CountDownLatch(1);
+        submitBlocking(queue, "user", "block", release);
+        queue.submit("user", "password", record("password1"));
+        queue.submit("user", "forgotPassword", record("forgotPassword"));
+        queue.submit("user", "password", record("password2"));
+
+        release.countDown();
+        queue.close();
+
+        assertEquals(Arrays.asList("block", "forgotPassword", "password2"), executed);
+    }
+
+    @Test
+    public void failureCompletesSupersededFuturesExceptionally() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(1, 10);
+        CountDownLatch release = new CountDownLatch(1);
+        IllegalStateException failure = new IllegalStateException("failed");
+        submitBlocking(queue, "user", "block", release);
+        CompletableFuture<Void> disable = queue.submit("user", "enabled", record("disable"));
+        CompletableFuture<Void> enable = queue.submit("user", "enabled", () -> {
+            throw failure;
+        });
+
+        release.countDown();
+        queue.close();
+
+        assertSame(failure, failureOf(disable));
+        assertSame(failure, failureOf(enable));
+    }
+
+    @Test
+    public void submitBlocksWhenCapacityIsReached() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        submitBlocking(queue, "user", "block", release);
+        AtomicBoolean submitted = new AtomicBoolean();
+        Thread submitter = new Thread(() -> {
+            queue.submit("otherUser", "enabled", record("enable"));
+            submitted.set(true);
+        });
+        submitter.start();
+        awaitWaiting(submitter);
+
+        assertFalse(submitted.get());
+
+        release.countDown();
+        submitter.join();
+        queue.close();
+
+        assertTrue(submitted.get());
+        assertEquals(Arrays.asList("block", "enable"), executed);
+    }
+
+    @Test
+    public void busyUserDoesNotStarveOtherUsers() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(1, 10);
+        CountDownLatch release = new CountDownLatch(1);
+        submitBlocking(queue, "busyUser", "busy1", release);
+        queue.submit("otherUser", "enabled", record("other"));
+        queue.submit("busyUser", "enabled", record("busy2"));
+
+        release.countDown();
+        queue.close();
+
+        assertEquals(Arrays.asList("busy1", "other", "busy2"), executed);
+    }
+
+    @Test
+    public void closeExecutesAllQueuedWrites() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(1, 10);
+        CountDownLatch release = new CountDownLatch(1);
+        submitBlocking(queue, "user", "block", release);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(queue.submit("user" + i, "enabled", record("user" + i)));
+        }
+        Thread closer = new Thread(queue::close);
+        closer.start();
+        awaitWaiting(closer);
+
+        assertEquals(Collections.emptyList(), executed);
+
+        release.countDown();
+        closer.join();
+
+        assertEquals(6, executed.size());
+        futures.forEach(future -> assertTrue(future.isDone()));
+    }
+
+    @Test
+    public void flushDoesNotWaitForLaterWrites() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(1, 10);
+        CountDownLatch releaseFirst = new CountDownLatch(1);
+        CountDownLatch releaseSecond = new CountDownLatch(1);
+        submitBlocking(queue, "user", "first", releaseFirst);
+        Thread flusher = new Thread(() -> {
+            try {
+                queue.flush();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        flusher.start();
+        awaitWaiting(flusher);
+        queue.submit("user", "second", blocking("second", releaseSecond));
+
+        releaseFirst.countDown();
+        flusher.join(10000);
+
+        assertFalse(flusher.isAlive());
+        releaseSecond.countDown();
+        queue.close();
+        assertEquals(Arrays.asList("first", "second"), executed);
+    }
+
+    /**
+     * Submits a write which blocks until released and waits until it is executed, so later writes are queued behind it.
+     */
+    private void submitBlocking(WriteBehindQueue queue, String userId, String name, CountDownLatch release) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        queue.submit(userId, name, () -> {
+            started.countDown();
+            blocking(name, release).run();
+        });
+        started.await();
+    }
+
+    private Runnable record(String name) {
+        return () -> executed.add(name);
+    }
+
+    private Runnable blocking(String name, CountDownLatch release) {
+        return () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            executed.add(name);
+        };
+    }
+
+    private static Throwable failureOf(CompletableFuture<Void> future) throws InterruptedException {
+        try {
+            future.get();
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+    }
+}